@@ -0,0 +1,563 @@
+package concepts.multithreading;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class _10_ScenarioRunner {
+    /*
+    Every example from _1_ThreadCreationExample to _7_Synchronized_Blocks has its own main method,
+    with the thread count and the iteration count (1_000_000 and so on) written into the code,
+    and the only output is whatever the example prints.
+
+    This runner wraps each of those primitives as a named scenario and runs it
+    with the load given on the command line:
+
+      --scenario <name|all>   which scenario to run (default: all)
+      --threads <n>           number of threads calling the scenario (default: 2)
+      --ops <n>               operations per thread, if given the run is count based
+      --duration <seconds>    measured time when --ops is not given (default: 5)
+      --warmup <seconds>      time to run before measuring, so the JIT has compiled the code (default: 1)
+      --write-ratio <0..1>    share of operations that are writes, the rest are reads (default: 0.5)
+
+    Each run prints one line of JSON with ops/sec, latency percentiles, gc and allocation numbers,
+    so the output can be stored and compared between machines and between versions.
+    * */
+
+    // one instance per run, shared by all the threads of that run
+    public interface Operation {
+        void run(boolean write);
+
+        // called once after the run, for operations that started helper threads
+        default void close() {
+        }
+    }
+
+    public interface Scenario {
+        Operation create();
+    }
+
+    public static Map<String, Scenario> scenarios() {
+        Map<String, Scenario> scenarios = new LinkedHashMap<>();
+
+        // _1_ThreadCreationExample: start a platform thread and wait for it
+        scenarios.put("platform-thread", () -> write -> {
+            Thread thread = new Thread(() -> { });
+            thread.start();
+            joinQuietly(thread);
+        });
+
+        // _2_StoppableRunnable: the synchronized stop flag
+        scenarios.put("stoppable-flag", () -> {
+            _2_StoppableRunnable stoppable = new _2_StoppableRunnable();
+            return write -> {
+                if (write) {
+                    stoppable.requestStop();
+                } else {
+                    stoppable.isStopRequested();
+                }
+            };
+        });
+
+        // _3_VirtualThreads: start a virtual thread and wait for it
+        scenarios.put("virtual-thread", () -> write -> joinQuietly(Thread.ofVirtual().start(() -> { })));
+
+        // _4_MemoryModel has no scenario: its MyRunnable only shows which variables live
+        // on the stack and which on the heap, there is no primitive in it to put load on
+
+        // _5_RaceConditions: unsynchronized count++ on a shared field, updates get lost
+        scenarios.put("racy-counter", () -> {
+            int[] count = new int[1];
+            return write -> {
+                if (write) {
+                    count[0]++;
+                } else {
+                    consume(count[0]);
+                }
+            };
+        });
+
+        // _6_HappensBefore.ValueExchanger: three ints moved through a monitor
+        scenarios.put("value-exchanger", () -> {
+            _6_HappensBefore happensBefore = new _6_HappensBefore();
+            _6_HappensBefore.ValueExchanger exchanger = happensBefore.new ValueExchanger();
+            return write -> {
+                _6_HappensBefore.Values values = happensBefore.new Values();
+                if (write) {
+                    values.setValA(1);
+                    values.setValB(2);
+                    values.setValC(3);
+                    exchanger.set(values);
+                } else {
+                    exchanger.get(values);
+                }
+            };
+        });
+
+        // _6_HappensBefore.FrameExchanger: one producer and one consumer, takeFrame() spins until
+        // a frame arrives, so several threads can not share one exchanger. every calling thread gets
+        // its own echo thread and a pair of exchangers, one operation is a full round trip:
+        // store into ping, the echo thread takes it and stores it into pong, take it from pong
+        scenarios.put("frame-exchanger", FrameExchangerOperation::new);
+
+        // _7_Synchronized_Blocks.SynchronizedExchanger
+        scenarios.put("synchronized-exchanger", () -> {
+            _7_Synchronized_Blocks.SynchronizedExchanger exchanger = new _7_Synchronized_Blocks().new SynchronizedExchanger();
+            return write -> {
+                if (write) {
+                    exchanger.setObject(Boolean.TRUE);
+                } else {
+                    exchanger.getObject();
+                }
+            };
+        });
+
+        // _7_Synchronized_Blocks.SynchronizedVisibility, the counter hammered by t3 and t4
+        scenarios.put("synchronized-counter", () -> {
+            _7_Synchronized_Blocks.SynchronizedVisibility counter = new _7_Synchronized_Blocks().new SynchronizedVisibility();
+            return write -> {
+                if (write) {
+                    counter.inc();
+                } else {
+                    consume(counter.get());
+                }
+            };
+        });
+
+        // _7_Synchronized_Blocks.MultipleMonitorObjects: writes use monitor1, reads use monitor2
+        scenarios.put("multiple-monitors", () -> {
+            _7_Synchronized_Blocks.MultipleMonitorObjects monitors = new _7_Synchronized_Blocks().new MultipleMonitorObjects();
+            return write -> {
+                if (write) {
+                    monitors.incrementCounter1();
+                } else {
+                    monitors.incrementCounter2();
+                }
+            };
+        });
+
+        // _7_Synchronized_Blocks.SharedMonitorObject: the opposite of multiple-monitors,
+        // two instances that share one monitor, writes go to the first and reads to the second
+        scenarios.put("shared-monitor", () -> {
+            _7_Synchronized_Blocks synchronizedBlocks = new _7_Synchronized_Blocks();
+            Object monitor = new Object();
+            _7_Synchronized_Blocks.SharedMonitorObject first = synchronizedBlocks.new SharedMonitorObject(monitor);
+            _7_Synchronized_Blocks.SharedMonitorObject second = synchronizedBlocks.new SharedMonitorObject(monitor);
+            return write -> {
+                if (write) {
+                    first.incrementCounter();
+                } else {
+                    consume(second.getCounter());
+                }
+            };
+        });
+
+        // _7_Synchronized_Blocks.StaticSynchronizedExchanger: the class is the monitor, so there is
+        // only one for the whole jvm, every run of this scenario shares it and its static field
+        scenarios.put("static-synchronized-exchanger", () -> write -> {
+            if (write) {
+                _7_Synchronized_Blocks.StaticSynchronizedExchanger.setObject(Boolean.TRUE);
+            } else {
+                _7_Synchronized_Blocks.StaticSynchronizedExchanger.getObject();
+            }
+        });
+
+        // _7_Synchronized_Blocks.MixedSynchronization: writes lock the class, reads lock the instance,
+        // two different monitors, so a write and a read never wait for each other.
+        // the class only has setters, so the "read" is the instance setter
+        scenarios.put("mixed-synchronization", () -> {
+            _7_Synchronized_Blocks.MixedSynchronization mixed = new _7_Synchronized_Blocks().new MixedSynchronization();
+            return write -> {
+                if (write) {
+                    _7_Synchronized_Blocks.MixedSynchronization.setStaticObj(Boolean.TRUE);
+                } else {
+                    mixed.setInstanceObj(Boolean.TRUE);
+                }
+            };
+        });
+
+        // _7_Synchronized_Blocks.ReentrantLock: writes call incAndGet(), which takes the monitor
+        // again from inside inc(), reads call inc() alone, the difference is the cost of reentry
+        scenarios.put("reentrant-counter", () -> {
+            _7_Synchronized_Blocks.ReentrantLock lock = new _7_Synchronized_Blocks().new ReentrantLock();
+            return write -> {
+                if (write) {
+                    consume(lock.incAndGet());
+                } else {
+                    lock.inc();
+                }
+            };
+        });
+
+        return scenarios;
+    }
+
+    private static class FrameExchangerOperation implements Operation {
+        private final _6_HappensBefore happensBefore = new _6_HappensBefore();
+        private final _6_HappensBefore.Frame frame = happensBefore.new Frame();
+        private final List<_6_HappensBefore.FrameExchanger> pings = new CopyOnWriteArrayList<>();
+        private final List<Thread> echoes = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<_6_HappensBefore.FrameExchanger[]> pair = ThreadLocal.withInitial(this::startEcho);
+
+        private _6_HappensBefore.FrameExchanger[] startEcho() {
+            _6_HappensBefore.FrameExchanger ping = this.happensBefore.new FrameExchanger();
+            _6_HappensBefore.FrameExchanger pong = this.happensBefore.new FrameExchanger();
+            Thread echo = new Thread(() -> {
+                _6_HappensBefore.Frame received;
+                // a null frame is the signal to stop, see close()
+                while ((received = ping.takeFrame()) != null) {
+                    pong.storeFrame(received);
+                }
+            }, "frame-echo-" + this.echoes.size());
+            echo.setDaemon(true);
+            echo.start();
+            this.pings.add(ping);
+            this.echoes.add(echo);
+            return new _6_HappensBefore.FrameExchanger[]{ping, pong};
+        }
+
+        // reads and writes are the same here, every round trip stores and takes one frame
+        @Override
+        public void run(boolean write) {
+            _6_HappensBefore.FrameExchanger[] exchangers = this.pair.get();
+            exchangers[0].storeFrame(this.frame);
+            exchangers[1].takeFrame();
+        }
+
+        // the caller threads are finished, so every echo thread is waiting in takeFrame()
+        @Override
+        public void close() {
+            for (_6_HappensBefore.FrameExchanger ping : this.pings) {
+                ping.storeFrame(null);
+            }
+            for (Thread echo : this.echoes) {
+                joinQuietly(echo);
+            }
+        }
+    }
+
+    public record Options(String scenario, int threads, long opsPerThread, long durationSeconds,
+                          long warmupSeconds, double writeRatio) {
+
+        public static Options parse(String[] args) {
+            CommandLine commandLine = new CommandLine(args,
+                    "--scenario", "--threads", "--ops", "--duration", "--warmup", "--write-ratio");
+            return new Options(commandLine.string("--scenario", "all"), commandLine.threads(2),
+                    commandLine.longValue("--ops", 0), commandLine.durationSeconds(5),
+                    commandLine.longValue("--warmup", 1), commandLine.writeRatio(0.5));
+        }
+    }
+
+    // "--name value" pairs, also used by _11_OpenLoopLoadGenerator.
+    // the options both tools have are read and checked here, so they behave the same in both
+    public static class CommandLine {
+        private final Map<String, String> values = new HashMap<>();
+
+        public CommandLine(String[] args, String... knownOptions) {
+            List<String> known = List.of(knownOptions);
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!known.contains(arg)) {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                this.values.put(arg, args[++i]);
+            }
+        }
+
+        public String string(String name, String defaultValue) {
+            return this.values.getOrDefault(name, defaultValue);
+        }
+
+        public int intValue(String name, int defaultValue) {
+            String value = this.values.get(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        public long longValue(String name, long defaultValue) {
+            String value = this.values.get(name);
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+
+        public double doubleValue(String name, double defaultValue) {
+            String value = this.values.get(name);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        public int threads(int defaultValue) {
+            int threads = intValue("--threads", defaultValue);
+            if (threads < 1) {
+                throw new IllegalArgumentException("Threads must be at least 1");
+            }
+            return threads;
+        }
+
+        public long durationSeconds(long defaultValue) {
+            long duration = longValue("--duration", defaultValue);
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Duration must be greater than 0");
+            }
+            return duration;
+        }
+
+        public double writeRatio(double defaultValue) {
+            double writeRatio = doubleValue("--write-ratio", defaultValue);
+            if (writeRatio < 0 || writeRatio > 1) {
+                throw new IllegalArgumentException("Write ratio must be between 0 and 1");
+            }
+            return writeRatio;
+        }
+    }
+
+    // log-linear buckets: values below 32 ns are exact, above that every power of two
+    // is split into 32 buckets, so a percentile is off by at most ~3%
+    // each thread records into its own histogram, they are merged at the end
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        public void record(long nanos) {
+            this.counts[bucket(Math.max(0, nanos))]++;
+            this.total++;
+            this.max = Math.max(this.max, nanos);
+        }
+
+        public void merge(LatencyHistogram other) {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        public long percentile(double percentile) {
+            if (this.total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * this.total);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        public long max() {
+            return this.max;
+        }
+
+        public long totalCount() {
+            return this.total;
+        }
+
+        public void reset() {
+            Arrays.fill(this.counts, 0);
+            this.total = 0;
+            this.max = 0;
+        }
+
+        // a value v >= 32 is shifted right by m bits so that it lands in [32, 64),
+        // bucket index is m * 32 + (v >>> m)
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+        }
+
+        private static long highestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_BUCKETS - 1;
+            long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << magnitude) - 1;
+        }
+    }
+
+    private static class Worker implements Runnable {
+        private final Operation operation;
+        private final Options options;
+        private final CyclicBarrier barrier;
+        private final long warmupEnd;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long allocatedBytes = 0;
+        private long ops = 0;
+        private long measureNanos = 0;
+
+        Worker(Operation operation, Options options, CyclicBarrier barrier, long warmupEnd) {
+            this.operation = operation;
+            this.options = options;
+            this.barrier = barrier;
+            this.warmupEnd = warmupEnd;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double writeRatio = this.options.writeRatio();
+            while (System.nanoTime() < this.warmupEnd) {
+                this.operation.run(random.nextDouble() < writeRatio);
+            }
+            await(this.barrier);
+
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(this.options.durationSeconds());
+            boolean countBased = this.options.opsPerThread() > 0;
+            long now = start;
+            while (countBased ? this.ops < this.options.opsPerThread() : now < end) {
+                boolean write = random.nextDouble() < writeRatio;
+                long opStart = now;
+                this.operation.run(write);
+                now = System.nanoTime();
+                this.histogram.record(now - opStart);
+                this.ops++;
+            }
+            this.measureNanos = now - start;
+            this.allocatedBytes = allocatedBytes() - allocatedBefore;
+        }
+
+        private static long allocatedBytes() {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean) {
+                return threadMXBean.getCurrentThreadAllocatedBytes();
+            }
+            return 0;
+        }
+    }
+
+    public static String run(String name, Scenario scenario, Options options) throws InterruptedException {
+        Operation operation = scenario.create();
+        // the barrier action runs once all threads are done warming up, right before measuring
+        long[] gcBefore = new long[2];
+        CyclicBarrier barrier = new CyclicBarrier(options.threads(), () -> {
+            gcBefore[0] = gcCount();
+            gcBefore[1] = gcTimeMillis();
+        });
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds());
+
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.threads(); i++) {
+            Worker worker = new Worker(operation, options, barrier, warmupEnd);
+            workers.add(worker);
+            threads.add(new Thread(worker, name + "-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        operation.close();
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long ops = 0;
+        long allocated = 0;
+        long measureNanos = 0;
+        for (Worker worker : workers) {
+            latency.merge(worker.histogram);
+            ops += worker.ops;
+            allocated += worker.allocatedBytes;
+            measureNanos = Math.max(measureNanos, worker.measureNanos);
+        }
+        double seconds = measureNanos / 1e9;
+
+        // Locale.ROOT: with the default locale a german jvm writes 1,5 instead of 1.5 and breaks the json
+
+        return "{"
+                + "\"scenario\":\"" + name + "\""
+                + ",\"threads\":" + options.threads()
+                + ",\"writeRatio\":" + options.writeRatio()
+                + ",\"ops\":" + ops
+                + ",\"seconds\":" + String.format(Locale.ROOT, "%.3f", seconds)
+                + ",\"opsPerSec\":" + String.format(Locale.ROOT, "%.1f", seconds > 0 ? ops / seconds : 0)
+                + ",\"latencyNanos\":{"
+                + "\"p50\":" + latency.percentile(50)
+                + ",\"p99\":" + latency.percentile(99)
+                + ",\"p999\":" + latency.percentile(99.9)
+                + ",\"max\":" + latency.max()
+                + "}"
+                + ",\"gc\":{"
+                + "\"count\":" + (gcCount() - gcBefore[0])
+                + ",\"timeMillis\":" + (gcTimeMillis() - gcBefore[1])
+                + "}"
+                + ",\"allocatedBytes\":" + allocated
+                + ",\"allocatedBytesPerOp\":" + String.format(Locale.ROOT, "%.1f", ops > 0 ? (double) allocated / ops : 0)
+                + "}";
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // keeps the JIT from removing reads whose result is not used
+    private static volatile int sink;
+
+    private static void consume(int value) {
+        sink = value;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = Options.parse(args);
+        Map<String, Scenario> scenarios = scenarios();
+        if (options.scenario().equals("all")) {
+            for (Map.Entry<String, Scenario> entry : scenarios.entrySet()) {
+                System.out.println(run(entry.getKey(), entry.getValue(), options));
+            }
+            return;
+        }
+        Scenario scenario = scenarios.get(options.scenario());
+        if (scenario == null) {
+            throw new IllegalArgumentException("Unknown scenario: " + options.scenario() + ", known: " + scenarios.keySet());
+        }
+        System.out.println(run(options.scenario(), scenario, options));
+    }
+}
@@ -0,0 +1,299 @@
+package concepts.multithreading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import concepts.multithreading._10_ScenarioRunner.CommandLine;
+import concepts.multithreading._10_ScenarioRunner.LatencyHistogram;
+import concepts.multithreading._10_ScenarioRunner.Operation;
+import concepts.multithreading._10_ScenarioRunner.Scenario;
+
+public class _11_OpenLoopLoadGenerator {
+    /*
+    _7_Synchronized_Blocks.main starts t3 and t4 which call sv.inc() in a loop,
+    the next call starts as soon as the previous one returns. This is a "closed loop".
+    If one call gets stuck for 10 ms (lock held by the other thread, a gc pause, ...),
+    the loop simply sends nothing during those 10 ms, so only one slow call is measured,
+    while in a real system all the requests that arrived during the 10 ms would have waited too.
+    This is called "coordinated omission": the load generator coordinates with the system
+    under test and omits exactly the measurements that would look bad.
+
+    An "open loop" sends operations on a fixed schedule, independent of how fast the
+    previous ones completed. The latency of an operation is measured from the time
+    it was supposed to start (the intended start time), not from the time it actually
+    started, so the waiting caused by earlier slow operations is included.
+
+    The latencies are recorded per thread, without locks, into the log-linear
+    histogram of _10_ScenarioRunner. A reader can take interval snapshots at any time
+    while the writers keep recording.
+    * */
+
+    // one writer thread records into a ThreadRecorder, one reader takes snapshots.
+    // the writer announces that it is recording (startCount), records into the active
+    // histogram and then announces that it is done (endCount).
+    // the reader swaps the active histogram for an empty one and waits until every
+    // record that may have started before the swap is done, after that nobody writes
+    // into the old histogram anymore and it can be read without locks.
+    public static class ThreadRecorder {
+        private volatile LatencyHistogram active = new LatencyHistogram();
+        private LatencyHistogram spare = new LatencyHistogram();
+        private volatile long startCount = 0;
+        private volatile long endCount = 0;
+
+        // writer thread only
+        public void record(long nanos) {
+            // single writer, so a plain increment of the volatile field is safe
+            this.startCount = this.startCount + 1;
+            this.active.record(nanos);
+            this.endCount = this.endCount + 1;
+        }
+
+        // reader side, the returned histogram is valid until the next call
+        LatencyHistogram swap() {
+            LatencyHistogram inactive = this.active;
+            this.active = this.spare;
+            // the volatile write of active above and the volatile read of startCount below
+            // cannot be reordered, so any record() that still sees the old histogram
+            // has already incremented startCount
+            long started = this.startCount;
+            while (this.endCount < started) {
+                Thread.onSpinWait();
+            }
+            this.spare = inactive;
+            return inactive;
+        }
+    }
+
+    public static class Recorder {
+        private final List<ThreadRecorder> recorders = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<ThreadRecorder> current = ThreadLocal.withInitial(() -> {
+            ThreadRecorder recorder = new ThreadRecorder();
+            this.recorders.add(recorder);
+            return recorder;
+        });
+
+        // each thread gets its own ThreadRecorder, look it up once and keep it
+        // in the hot loop, ThreadLocal.get() is not free
+        public ThreadRecorder forCurrentThread() {
+            return this.current.get();
+        }
+
+        // merges everything recorded since the previous snapshot into the target
+        // only one thread should take snapshots
+        public synchronized void intervalSnapshot(LatencyHistogram target) {
+            for (ThreadRecorder recorder : this.recorders) {
+                LatencyHistogram interval = recorder.swap();
+                target.merge(interval);
+                interval.reset();
+            }
+        }
+    }
+
+    public record Result(double targetRate, double achievedRate, LatencyHistogram latency,
+                         LatencyHistogram serviceTime) {
+        @Override
+        public String toString() {
+            return String.format("target %,.0f ops/s achieved %,.0f ops/s | latency p50=%d p99=%d p999=%d max=%d ns"
+                            + " | service time p50=%d p99=%d max=%d ns",
+                    this.targetRate, this.achievedRate,
+                    this.latency.percentile(50), this.latency.percentile(99),
+                    this.latency.percentile(99.9), this.latency.max(),
+                    this.serviceTime.percentile(50), this.serviceTime.percentile(99), this.serviceTime.max());
+        }
+    }
+
+    // spin for the last few microseconds, park before that, parking is not precise enough
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // every thread gets rate / threads of the load, the threads are shifted
+    // by one period each so the operations are spread evenly over time.
+    // every run gets a fresh operation from the scenario and closes it at the end,
+    // so helper threads (frame-exchanger) and state do not carry over from one run to the next
+    public static Result run(Scenario scenario, double ratePerSecond, int threads, long durationSeconds,
+                             double writeRatio, boolean printIntervals) throws InterruptedException {
+        if (threads < 1 || !(ratePerSecond > 0) || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Need at least 1 thread, a rate and a duration greater than 0");
+        }
+        Operation operation = scenario.create();
+        try {
+            return run(operation, ratePerSecond, threads, durationSeconds, writeRatio, printIntervals);
+        } finally {
+            operation.close();
+        }
+    }
+
+    private static Result run(Operation operation, double ratePerSecond, int threads, long durationSeconds,
+                              double writeRatio, boolean printIntervals) throws InterruptedException {
+        Recorder latencyRecorder = new Recorder();
+        Recorder serviceRecorder = new Recorder();
+        // kept as a double: at high rates the period per thread is a fraction of a nanosecond,
+        // a long period would be 0 and the schedule would never move forward
+        double periodNanos = 1e9 * threads / ratePerSecond;
+        long durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long[] completed = new long[threads];
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers.add(new Thread(() -> {
+                ThreadRecorder latency = latencyRecorder.forCurrentThread();
+                ThreadRecorder service = serviceRecorder.forCurrentThread();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long end = start + durationNanos;
+                long ops = 0;
+                long intended = start + (long) (periodNanos * index / threads);
+                while (intended < end) {
+                    waitUntil(intended);
+                    long actualStart = System.nanoTime();
+                    operation.run(random.nextDouble() < writeRatio);
+                    long done = System.nanoTime();
+                    latency.record(done - intended);
+                    service.record(done - actualStart);
+                    ops++;
+                    // the next operation is due one period after this one was due,
+                    // not one period after this one finished
+                    intended = start + (long) (periodNanos * (ops + (double) index / threads));
+                    // a generator that fell behind does not keep sending after the run is over,
+                    // the missing operations show up as achieved rate below the target
+                    if (done >= end) {
+                        break;
+                    }
+                }
+                completed[index] = ops;
+            }, "open-loop-" + t));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        LatencyHistogram interval = new LatencyHistogram();
+        for (int second = 1; second <= durationSeconds; second++) {
+            waitUntil(start + TimeUnit.SECONDS.toNanos(second));
+            latencyRecorder.intervalSnapshot(interval);
+            if (printIntervals) {
+                System.out.printf("  interval %ds: %,d ops p99=%d ns max=%d ns%n",
+                        second, interval.totalCount(), interval.percentile(99), interval.max());
+            }
+            latency.merge(interval);
+            interval.reset();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        latencyRecorder.intervalSnapshot(latency);
+        serviceRecorder.intervalSnapshot(serviceTime);
+
+        long elapsed = System.nanoTime() - start;
+        long ops = 0;
+        for (long count : completed) {
+            ops += count;
+        }
+        return new Result(ratePerSecond, ops / (elapsed / 1e9), latency, serviceTime);
+    }
+
+    // lowest rate tried when searching downwards, below that the scenario is considered unable to meet the slo
+    private static final double MIN_RATE = 1;
+
+    // doubles the rate until the p99 goes over the slo (or the generator can not keep up),
+    // or halves it while it does when the start rate already fails,
+    // then does a binary search between the last rate that passed and the first that failed
+    public static double findMaxSustainableRate(Scenario scenario, double startRate, int threads,
+                                                long durationSeconds, double writeRatio, long sloNanos)
+            throws InterruptedException {
+        double good = 0;
+        double bad = 0;
+        double rate = startRate;
+        if (passes(scenario, rate, threads, durationSeconds, writeRatio, sloNanos)) {
+            good = rate;
+            while (bad == 0) {
+                rate *= 2;
+                if (passes(scenario, rate, threads, durationSeconds, writeRatio, sloNanos)) {
+                    good = rate;
+                } else {
+                    bad = rate;
+                }
+            }
+        } else {
+            bad = rate;
+            while (good == 0) {
+                rate /= 2;
+                if (rate < MIN_RATE) {
+                    return 0;
+                }
+                if (passes(scenario, rate, threads, durationSeconds, writeRatio, sloNanos)) {
+                    good = rate;
+                } else {
+                    bad = rate;
+                }
+            }
+        }
+        // good and bad are at most a factor two apart, 5% is reached in at most 5 steps
+        while (bad - good > good * 0.05) {
+            rate = (good + bad) / 2;
+            if (passes(scenario, rate, threads, durationSeconds, writeRatio, sloNanos)) {
+                good = rate;
+            } else {
+                bad = rate;
+            }
+        }
+        return good;
+    }
+
+    private static boolean passes(Scenario scenario, double rate, int threads, long durationSeconds,
+                                  double writeRatio, long sloNanos) throws InterruptedException {
+        Result result = run(scenario, rate, threads, durationSeconds, writeRatio, false);
+        boolean passed = meetsSlo(result, sloNanos);
+        System.out.println((passed ? "PASS " : "FAIL ") + result);
+        return passed;
+    }
+
+    private static boolean meetsSlo(Result result, long sloNanos) {
+        return result.latency().percentile(99) <= sloNanos && result.achievedRate() >= result.targetRate() * 0.95;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        CommandLine commandLine = new CommandLine(args,
+                "--scenario", "--threads", "--rate", "--duration", "--write-ratio", "--slo-micros");
+        String scenarioName = commandLine.string("--scenario", "synchronized-counter");
+        int threads = commandLine.threads(2);
+        double rate = commandLine.doubleValue("--rate", 100_000);
+        long duration = commandLine.durationSeconds(5);
+        double writeRatio = commandLine.writeRatio(0.5);
+        // when given, search for the highest rate that keeps p99 under this slo
+        long sloMicros = commandLine.longValue("--slo-micros", 0);
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Rate must be greater than 0");
+        }
+        Scenario scenario = _10_ScenarioRunner.scenarios().get(scenarioName);
+        if (scenario == null) {
+            throw new IllegalArgumentException("Unknown scenario: " + scenarioName
+                    + ", known: " + _10_ScenarioRunner.scenarios().keySet());
+        }
+
+        if (sloMicros > 0) {
+            double max = findMaxSustainableRate(scenario, rate, threads, duration, writeRatio,
+                    TimeUnit.MICROSECONDS.toNanos(sloMicros));
+            System.out.printf("max sustainable rate for p99 <= %d us: %,.0f ops/s%n", sloMicros, max);
+        } else {
+            System.out.println(run(scenario, rate, threads, duration, writeRatio, true));
+        }
+    }
+}
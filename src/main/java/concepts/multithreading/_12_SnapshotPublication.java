@@ -0,0 +1,433 @@
+package concepts.multithreading;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+public class _12_SnapshotPublication {
+    /*
+    _6_HappensBefore.ValueExchanger moves three ints through a monitor, so every reader
+    takes the lock and readers block each other even though none of them writes anything.
+    _6_HappensBefore.FrameExchanger publishes with a volatile flag, which is enough for one
+    consumer, but the fields are still separate and a second reader can see a half written state.
+
+    For one writer and many readers there is a simpler way: never change the state in place.
+    The writer builds a new immutable object (a record) with all the fields set,
+    and then publishes the reference to it with a single store. A reader loads the reference
+    once and then reads all the fields from the same object, so it can never see
+    a mix of old and new values.
+
+    volatile is stronger than what this needs. VarHandle gives access to weaker modes:
+    - setRelease: all writes before it (the fields of the new record) are visible
+      to a thread that reads the reference with getAcquire
+    - getAcquire: reads after it can not be moved before it
+    - opaque: the value is read / written as a whole and eventually visible,
+      but no ordering with other variables. on its own not enough for a version number that tells
+      the reader when to re-read the snapshot: the new version could be seen before the new snapshot.
+      it is enough for polling "has anything changed" though, as long as the reader puts
+      an acquire fence between the poll and the read, see SnapshotPublisher.pollVersion()
+    - volatile (get / set): release + acquire + a full fence after the store,
+      that fence (StoreLoad) is the expensive part and publication does not need it
+
+    On x86 getAcquire and a plain load compile to the same instruction, the saving is
+    on the writer side and in what the JIT is allowed to reorder around the reads.
+    * */
+
+    // single writer, any number of readers
+    public static class SnapshotPublisher<T> {
+        private static final VarHandle SNAPSHOT;
+        private static final VarHandle VERSION;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                SNAPSHOT = lookup.findVarHandle(SnapshotPublisher.class, "snapshot", Object.class);
+                VERSION = lookup.findVarHandle(SnapshotPublisher.class, "version", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // not volatile, every access goes through the VarHandles with an explicit mode
+        private Object snapshot;
+        private long version = 0;
+
+        public SnapshotPublisher(T initial) {
+            this.snapshot = initial;
+            // make the initial snapshot visible to readers that only got the publisher by a race
+            VarHandle.releaseFence();
+        }
+
+        // writer only
+        public void publish(T snapshot) {
+            // the fields of the snapshot are written before this, the release store
+            // makes them visible together with the reference
+            SNAPSHOT.setRelease(this, snapshot);
+            // single writer, so a plain read is enough. the release store orders the version
+            // after the snapshot: a reader that sees version N with getAcquire also sees snapshot N
+            VERSION.setRelease(this, this.version + 1);
+        }
+
+        // batched multi-field update: the writer derives the next snapshot from the current one,
+        // however many fields change, readers see one publication
+        // writer only, the writer always sees its own last store
+        @SuppressWarnings("unchecked")
+        public T update(UnaryOperator<T> change) {
+            T next = change.apply((T) this.snapshot);
+            publish(next);
+            return next;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T read() {
+            return (T) SNAPSHOT.getAcquire(this);
+        }
+
+        // cheap check whether something was published since the reader last looked,
+        // a reader that caches its snapshot calls read() only when this changes.
+        // the acquire keeps the following read() from being moved before this load
+        public long version() {
+            return (long) VERSION.getAcquire(this);
+        }
+
+        // the same check for a reader that polls much more often than the writer publishes.
+        // the opaque load only promises that a new version shows up eventually, it orders nothing.
+        // only when the version changed, the acquire fence gives the load acquire semantics
+        // after the fact, so the read() that follows sees at least the snapshot of that version.
+        // returns the current version, seenVersion itself when nothing changed
+        public long pollVersion(long seenVersion) {
+            long version = (long) VERSION.getOpaque(this);
+            if (version != seenVersion) {
+                VarHandle.acquireFence();
+            }
+            return version;
+        }
+    }
+
+    // records only have final fields, so they are safely initialized
+    // as soon as the constructor finishes
+    public record Values(int valA, int valB, int valC) {
+        public Values withValA(int valA) {
+            return new Values(valA, this.valB, this.valC);
+        }
+
+        public Values withValB(int valB) {
+            return new Values(this.valA, valB, this.valC);
+        }
+
+        public Values withValC(int valC) {
+            return new Values(this.valA, this.valB, valC);
+        }
+    }
+
+    // the same api as _6_HappensBefore.ValueExchanger, without the monitor
+    public static class SnapshotValueExchanger {
+        private final SnapshotPublisher<Values> publisher = new SnapshotPublisher<>(new Values(0, 0, 0));
+
+        public void set(_6_HappensBefore.Values v) {
+            this.publisher.publish(new Values(v.getValA(), v.getValB(), v.getValC()));
+        }
+
+        public void get(_6_HappensBefore.Values v) {
+            Values snapshot = this.publisher.read();
+            v.setValA(snapshot.valA());
+            v.setValB(snapshot.valB());
+            v.setValC(snapshot.valC());
+        }
+
+        public Values snapshot() {
+            return this.publisher.read();
+        }
+    }
+
+    // the FrameExchanger way for three fields: plain fields guarded by a volatile sequence number.
+    // the writer makes the sequence odd while it writes, readers retry when they saw
+    // an odd sequence or the sequence changed while they were reading
+    public static class VolatileValueExchanger {
+        private volatile long sequence = 0;
+        private int valA;
+        private int valB;
+        private int valC;
+
+        public void set(int valA, int valB, int valC) {
+            long s = this.sequence;
+            this.sequence = s + 1;
+            // a volatile store only keeps earlier writes before it, the plain field writes below
+            // could still move above it and a reader would see an even sequence with half written fields
+            VarHandle.storeStoreFence();
+            this.valA = valA;
+            this.valB = valB;
+            this.valC = valC;
+            this.sequence = s + 2;
+        }
+
+        // the same api as _6_HappensBefore.ValueExchanger, copies into the caller's Values.
+        // the record from get() does not escape, so the JIT can remove the allocation
+        public void get(_6_HappensBefore.Values v) {
+            Values snapshot = get();
+            v.setValA(snapshot.valA());
+            v.setValB(snapshot.valB());
+            v.setValC(snapshot.valC());
+        }
+
+        public Values get() {
+            while (true) {
+                long before = this.sequence;
+                int a = this.valA;
+                int b = this.valB;
+                int c = this.valC;
+                // the field reads must not move below the second sequence read
+                VarHandle.loadLoadFence();
+                if ((before & 1) == 0 && before == this.sequence) {
+                    return new Values(a, b, c);
+                }
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // deliberately broken: three plain fields, no publication at all
+    private static class PlainValues {
+        int valA;
+        int valB;
+        int valC;
+    }
+
+    /*
+    jcstress-style visibility check: one writer publishes (i, i, i) for a growing i,
+    readers check every snapshot they see.
+    - torn: the fields of one snapshot are not equal, the reader saw a half published state
+    - stale: a reader saw a lower i than it had already seen before, time went backwards
+    Both outcomes are forbidden for the publisher, the plain fields version shows that
+    the check is able to catch them.
+    The "version then read()" case checks the caching pattern of SnapshotPublisher.version(),
+    "opaque poll then read()" the same pattern with pollVersion():
+    snapshot i is published as version i, so a snapshot older than the version it was read for is stale.
+    * */
+    private interface Reader {
+        long TORN = -1;
+        long STALE = -2;
+
+        // returns the common value, TORN if the fields differ, STALE if the reader can tell it is outdated
+        long readChecked();
+    }
+
+    private static void stress(String name, Runnable writerStep, Supplier<Reader> readerPerThread, int readers, long millis)
+            throws InterruptedException {
+        LongAdder observed = new LongAdder();
+        LongAdder torn = new LongAdder();
+        LongAdder stale = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        Thread writer = new Thread(() -> {
+            while (System.nanoTime() < end) {
+                writerStep.run();
+            }
+        });
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            readerThreads.add(new Thread(() -> {
+                Reader reader = readerPerThread.get();
+                long last = -1;
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    long value = reader.readChecked();
+                    if (value == Reader.TORN) {
+                        torn.increment();
+                    } else if (value == Reader.STALE || value < last) {
+                        stale.increment();
+                    } else {
+                        last = value;
+                    }
+                    count++;
+                }
+                observed.add(count);
+            }));
+        }
+        writer.start();
+        readerThreads.forEach(Thread::start);
+        writer.join();
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+        System.out.printf("%-24s observed=%,d  torn=%,d  stale=%,d  -> %s%n", name, observed.sum(),
+                torn.sum(), stale.sum(), torn.sum() == 0 && stale.sum() == 0 ? "OK" : "FORBIDDEN outcomes seen");
+    }
+
+    private static long check(int a, int b, int c) {
+        return a == b && b == c ? a : Reader.TORN;
+    }
+
+    private static void stressAll() throws InterruptedException {
+        int readers = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        long millis = 2000;
+
+        SnapshotPublisher<Values> publisher = new SnapshotPublisher<>(new Values(0, 0, 0));
+        stress("release/acquire", () -> publisher.update(v -> {
+            int next = v.valA() + 1;
+            return v.withValA(next).withValB(next).withValC(next);
+        }), () -> () -> {
+            Values v = publisher.read();
+            return check(v.valA(), v.valB(), v.valC());
+        }, readers, millis);
+
+        SnapshotPublisher<Values> versioned = new SnapshotPublisher<>(new Values(0, 0, 0));
+        stress("version then read()", () -> versioned.update(v -> {
+            int next = v.valA() + 1;
+            return new Values(next, next, next);
+        }), () -> new Reader() {
+            private long cachedVersion = -1;
+            private Values cached;
+
+            @Override
+            public long readChecked() {
+                long version = versioned.version();
+                if (version != this.cachedVersion) {
+                    this.cached = versioned.read();
+                    this.cachedVersion = version;
+                }
+                long value = check(this.cached.valA(), this.cached.valB(), this.cached.valC());
+                // the cached snapshot must be at least as new as the version it is kept for
+                return value >= 0 && value < this.cachedVersion ? STALE : value;
+            }
+        }, readers, millis);
+
+        SnapshotPublisher<Values> polled = new SnapshotPublisher<>(new Values(0, 0, 0));
+        stress("opaque poll then read()", () -> polled.update(v -> {
+            int next = v.valA() + 1;
+            return new Values(next, next, next);
+        }), () -> new Reader() {
+            private long cachedVersion = -1;
+            private Values cached;
+
+            @Override
+            public long readChecked() {
+                long version = polled.pollVersion(this.cachedVersion);
+                if (version != this.cachedVersion) {
+                    this.cached = polled.read();
+                    this.cachedVersion = version;
+                }
+                long value = check(this.cached.valA(), this.cached.valB(), this.cached.valC());
+                // without the acquire fence in pollVersion() the read() could see a snapshot older than the version
+                return value >= 0 && value < this.cachedVersion ? STALE : value;
+            }
+        }, readers, millis);
+
+        VolatileValueExchanger volatileExchanger = new VolatileValueExchanger();
+        int[] volatileNext = new int[1];
+        stress("volatile sequence", () -> {
+            int next = ++volatileNext[0];
+            volatileExchanger.set(next, next, next);
+        }, () -> () -> {
+            Values v = volatileExchanger.get();
+            return check(v.valA(), v.valB(), v.valC());
+        }, readers, millis);
+
+        PlainValues plain = new PlainValues();
+        stress("plain fields (broken)", () -> {
+            int next = plain.valA + 1;
+            plain.valA = next;
+            plain.valB = next;
+            plain.valC = next;
+        }, () -> () -> check(plain.valA, plain.valB, plain.valC), readers, millis);
+    }
+
+    // read throughput with one writer that keeps publishing,
+    // every reader thread gets its own read function so it can reuse its own Values
+    private static double readThroughput(Runnable write, Supplier<IntSupplier> readerPerThread, int readers, long millis)
+            throws InterruptedException {
+        LongAdder reads = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        Thread writer = new Thread(() -> {
+            while (System.nanoTime() < end) {
+                write.run();
+            }
+        });
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            readerThreads.add(new Thread(() -> {
+                IntSupplier read = readerPerThread.get();
+                long count = 0;
+                int sum = 0;
+                // check the clock only every 1024 reads, nanoTime costs more than the read
+                while ((count & 1023) != 0 || System.nanoTime() < end) {
+                    sum += read.getAsInt();
+                    count++;
+                }
+                // one write per thread at the end, a shared write per read would measure
+                // the contention on sink instead of the reads
+                sink = sum;
+                reads.add(count);
+            }));
+        }
+        long start = System.nanoTime();
+        writer.start();
+        readerThreads.forEach(Thread::start);
+        writer.join();
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+        return reads.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // keeps the JIT from removing reads whose result is not used
+    private static volatile int sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        stressAll();
+
+        int readers = 64;
+        long millis = 3000;
+        _6_HappensBefore happensBefore = new _6_HappensBefore();
+
+        _6_HappensBefore.ValueExchanger synchronizedExchanger = happensBefore.new ValueExchanger();
+        _6_HappensBefore.Values written = happensBefore.new Values();
+        double synchronizedReads = readThroughput(() -> {
+            written.setValA(written.getValA() + 1);
+            synchronizedExchanger.set(written);
+        }, () -> {
+            _6_HappensBefore.Values v = happensBefore.new Values();
+            return () -> {
+                synchronizedExchanger.get(v);
+                return v.getValA() + v.getValB() + v.getValC();
+            };
+        }, readers, millis);
+
+        VolatileValueExchanger volatileExchanger = new VolatileValueExchanger();
+        int[] volatileNext = new int[1];
+        double volatileReads = readThroughput(() -> {
+            int next = ++volatileNext[0];
+            volatileExchanger.set(next, next, next);
+        }, () -> {
+            _6_HappensBefore.Values v = happensBefore.new Values();
+            return () -> {
+                volatileExchanger.get(v);
+                return v.getValA() + v.getValB() + v.getValC();
+            };
+        }, readers, millis);
+
+        SnapshotValueExchanger snapshotExchanger = new SnapshotValueExchanger();
+        _6_HappensBefore.Values snapshotWritten = happensBefore.new Values();
+        double snapshotReads = readThroughput(() -> {
+            snapshotWritten.setValA(snapshotWritten.getValA() + 1);
+            snapshotExchanger.set(snapshotWritten);
+        }, () -> {
+            _6_HappensBefore.Values v = happensBefore.new Values();
+            return () -> {
+                snapshotExchanger.get(v);
+                return v.getValA() + v.getValB() + v.getValC();
+            };
+        }, readers, millis);
+
+        System.out.printf("%d readers, 1 writer%n", readers);
+        System.out.printf("synchronized (ValueExchanger) %,15.0f reads/s%n", synchronizedReads);
+        System.out.printf("volatile sequence             %,15.0f reads/s%n", volatileReads);
+        System.out.printf("release/acquire snapshot      %,15.0f reads/s%n", snapshotReads);
+    }
+}
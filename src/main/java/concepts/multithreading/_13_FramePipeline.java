@@ -0,0 +1,443 @@
+package concepts.multithreading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class _13_FramePipeline {
+    /*
+    _6_HappensBefore.FrameExchanger connects exactly one producer with one consumer
+    through a single slot, guarded by the volatile hasNewFrame flag.
+    Real frames go through several stages (decode -> transform -> encode) and each stage
+    costs something different, so one thread per stage means the whole pipeline runs
+    at the speed of the slowest stage.
+
+    This pipeline keeps the FrameExchanger idea but:
+    - a link between two stages is a ring of slots instead of one slot, and every slot has its own
+      sequence number that plays the role of hasNewFrame (Vyukov's bounded MPMC queue),
+      so several threads can store and take frames at the same time without locks
+    - a stage can run on several threads, so a slow stage gets more threads
+    - a full link makes the stage in front of it wait instead of overwriting the frame
+      (storeFrame in FrameExchanger just overwrites), so the waiting moves upstream stage by stage
+      until it reaches submit(): this is backpressure
+    - every frame gets a sequence number when it is submitted, stages with several threads finish
+      frames out of order, and the sink puts them back in order before handing them out
+
+    Only one thread may call submit(), like the single producer of FrameExchanger.
+    * */
+
+    // wait strategy used whenever a link is full or empty:
+    // spin first (cheap if the other side is fast), then yield, then park for a short while
+    static void backoff(int attempt) {
+        if (attempt < 100) {
+            Thread.onSpinWait();
+        } else if (attempt < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+    }
+
+    // bounded lock-free multi-producer multi-consumer queue
+    // a slot is free for the producer at position pos when its sequence == pos,
+    // and holds a frame for the consumer at position pos when its sequence == pos + 1
+    public static class BoundedLink<T> {
+        private final int mask;
+        private final AtomicLongArray sequences;
+        // plain array, the release / acquire on the slot sequence makes the element visible
+        private final Object[] items;
+        private final AtomicLong storePosition = new AtomicLong();
+        private final AtomicLong takePosition = new AtomicLong();
+
+        public BoundedLink(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+            }
+            this.mask = capacity - 1;
+            this.sequences = new AtomicLongArray(capacity);
+            this.items = new Object[capacity];
+            for (int i = 0; i < capacity; i++) {
+                this.sequences.set(i, i);
+            }
+        }
+
+        public boolean offer(T item) {
+            long pos = this.storePosition.get();
+            while (true) {
+                int slot = (int) (pos & this.mask);
+                long difference = this.sequences.getAcquire(slot) - pos;
+                if (difference == 0) {
+                    if (this.storePosition.compareAndSet(pos, pos + 1)) {
+                        this.items[slot] = item;
+                        this.sequences.setRelease(slot, pos + 1);
+                        return true;
+                    }
+                    pos = this.storePosition.get();
+                } else if (difference < 0) {
+                    // the consumer has not taken the frame from a full lap ago, the link is full
+                    return false;
+                } else {
+                    // another producer took this position, try the next one
+                    pos = this.storePosition.get();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public T poll() {
+            long pos = this.takePosition.get();
+            while (true) {
+                int slot = (int) (pos & this.mask);
+                long difference = this.sequences.getAcquire(slot) - (pos + 1);
+                if (difference == 0) {
+                    if (this.takePosition.compareAndSet(pos, pos + 1)) {
+                        T item = (T) this.items[slot];
+                        this.items[slot] = null;
+                        // free the slot for the producer one lap later
+                        this.sequences.setRelease(slot, pos + this.mask + 1);
+                        return item;
+                    }
+                    pos = this.takePosition.get();
+                } else if (difference < 0) {
+                    // empty
+                    return null;
+                } else {
+                    pos = this.takePosition.get();
+                }
+            }
+        }
+
+        // approximate while producers and consumers are running
+        public int size() {
+            long size = this.storePosition.get() - this.takePosition.get();
+            return (int) Math.max(0, Math.min(size, capacity()));
+        }
+
+        public int capacity() {
+            return this.mask + 1;
+        }
+    }
+
+    // what travels through the links: the payload and the sequence it was submitted with
+    record Sequenced(long sequence, Object payload) {
+    }
+
+    public record StageStats(String name, int parallelism, long processed, double throughputPerSecond,
+                             int inputOccupancy, double averageInputOccupancy, int inputCapacity,
+                             long blockedOutputs) {
+        @Override
+        public String toString() {
+            return String.format("%-10s x%-2d processed=%,d  %,.0f frames/s  input queue %d/%d (average %.1f)  blocked on output %,d times",
+                    this.name, this.parallelism, this.processed, this.throughputPerSecond,
+                    this.inputOccupancy, this.inputCapacity, this.averageInputOccupancy, this.blockedOutputs);
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final int parallelism;
+        private final Function<Object, Object> function;
+        private final LongAdder processed = new LongAdder();
+        // how often a worker found the next link full, this is the backpressure reaching this stage
+        private final LongAdder blockedOutputs = new LongAdder();
+        // input queue size seen by the workers each time they took a frame, for the average occupancy
+        private final LongAdder occupancySum = new LongAdder();
+        private BoundedLink<Sequenced> input;
+        private BoundedLink<Sequenced> output;
+
+        Stage(String name, int parallelism, Function<Object, Object> function) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.function = function;
+        }
+    }
+
+    // what the builder remembers about a stage, the running Stage is created by build()
+    private record StageDefinition(String name, int parallelism, Function<Object, Object> function) {
+    }
+
+    // immutable: stage() returns a new builder, so an intermediate builder can be reused
+    // or built several times, every build() gets its own stages, links and counters
+    public static class Builder<I, T> {
+        private final int linkCapacity;
+        private final List<StageDefinition> stages;
+
+        private Builder(int linkCapacity, List<StageDefinition> stages) {
+            this.linkCapacity = linkCapacity;
+            this.stages = stages;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <R> Builder<I, R> stage(String name, int parallelism, Function<? super T, ? extends R> function) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be at least 1 for stage " + name);
+            }
+            List<StageDefinition> stages = new ArrayList<>(this.stages);
+            stages.add(new StageDefinition(name, parallelism, (Function<Object, Object>) function));
+            return new Builder<>(this.linkCapacity, List.copyOf(stages));
+        }
+
+        @SuppressWarnings("unchecked")
+        public Pipeline<I> build(Consumer<? super T> sink) {
+            if (this.stages.isEmpty()) {
+                throw new IllegalStateException("A pipeline needs at least one stage");
+            }
+            List<Stage> stages = new ArrayList<>();
+            for (StageDefinition definition : this.stages) {
+                stages.add(new Stage(definition.name(), definition.parallelism(), definition.function()));
+            }
+            return new Pipeline<>(this.linkCapacity, stages, (Consumer<Object>) sink);
+        }
+    }
+
+    public static <I> Builder<I, I> builder(int linkCapacity) {
+        return new Builder<>(linkCapacity, List.of());
+    }
+
+    public static class Pipeline<I> {
+        private final List<Stage> stages;
+        private final List<BoundedLink<Sequenced>> links = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final Consumer<Object> sink;
+        // frames that were submitted but not handed to the sink yet, at most window of them.
+        // holds the Sequenced wrapper, not the payload: an empty slot means "not arrived yet",
+        // so a stage that returns null must not look like an empty slot
+        private final Sequenced[] reorderBuffer;
+        private final int window;
+        private final AtomicLong emitted = new AtomicLong();
+        private long submitted = 0;
+        private volatile boolean running = true;
+        // the first exception thrown by a stage or by the sink, it stops the whole pipeline
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final long startNanos = System.nanoTime();
+
+        private Pipeline(int linkCapacity, List<Stage> stages, Consumer<Object> sink) {
+            this.stages = List.copyOf(stages);
+            this.sink = sink;
+            for (int i = 0; i <= this.stages.size(); i++) {
+                this.links.add(new BoundedLink<>(linkCapacity));
+            }
+            // every frame in flight is in a link, in a worker or in the reorder buffer,
+            // limiting the frames in flight to the reorder buffer size means the sink
+            // never has to stop draining the last link, so it can never block a worker
+            int inFlight = 0;
+            for (Stage stage : this.stages) {
+                inFlight += linkCapacity + stage.parallelism;
+            }
+            this.window = Integer.highestOneBit(inFlight + linkCapacity) << 1;
+            this.reorderBuffer = new Sequenced[this.window];
+
+            for (int i = 0; i < this.stages.size(); i++) {
+                Stage stage = this.stages.get(i);
+                stage.input = this.links.get(i);
+                stage.output = this.links.get(i + 1);
+                for (int w = 0; w < stage.parallelism; w++) {
+                    this.threads.add(new Thread(() -> runStage(stage), stage.name + "-" + w));
+                }
+            }
+            this.threads.add(new Thread(this::runSink, "sink"));
+            for (Thread thread : this.threads) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        // blocks while the pipeline is full, single producer only.
+        // throws IllegalStateException if a stage or the sink has failed
+        public void submit(I frame) {
+            long sequence = this.submitted;
+            int attempt = 0;
+            while (sequence - this.emitted.get() >= this.window) {
+                checkFailure();
+                backoff(attempt++);
+            }
+            if (!put(this.links.get(0), new Sequenced(sequence, frame), null)) {
+                checkFailure();
+            }
+            this.submitted = sequence + 1;
+        }
+
+        // waits until every submitted frame went through the sink, then stops the threads.
+        // if a stage or the sink failed, the threads are stopped and the failure is rethrown
+        public void close() throws InterruptedException {
+            int attempt = 0;
+            while (this.emitted.get() < this.submitted && this.failure.get() == null) {
+                backoff(attempt++);
+            }
+            this.running = false;
+            for (Thread thread : this.threads) {
+                thread.join();
+            }
+            checkFailure();
+        }
+
+        private void fail(Throwable t) {
+            this.failure.compareAndSet(null, t);
+            this.running = false;
+        }
+
+        private void checkFailure() {
+            Throwable t = this.failure.get();
+            if (t != null) {
+                throw new IllegalStateException("Pipeline failed", t);
+            }
+        }
+
+        public List<StageStats> stats() {
+            double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+            List<StageStats> stats = new ArrayList<>();
+            for (Stage stage : this.stages) {
+                long processed = stage.processed.sum();
+                double averageOccupancy = processed > 0 ? (double) stage.occupancySum.sum() / processed : 0;
+                stats.add(new StageStats(stage.name, stage.parallelism, processed, processed / seconds,
+                        stage.input.size(), averageOccupancy, stage.input.capacity(), stage.blockedOutputs.sum()));
+            }
+            return stats;
+        }
+
+        // false if the pipeline stopped while waiting for room in the link
+        private boolean put(BoundedLink<Sequenced> link, Sequenced item, Stage blockedStage) {
+            if (link.offer(item)) {
+                return true;
+            }
+            if (blockedStage != null) {
+                blockedStage.blockedOutputs.increment();
+            }
+            int attempt = 0;
+            while (!link.offer(item)) {
+                if (!this.running) {
+                    return false;
+                }
+                backoff(attempt++);
+            }
+            return true;
+        }
+
+        private void runStage(Stage stage) {
+            int attempt = 0;
+            while (this.running) {
+                Sequenced item = stage.input.poll();
+                if (item == null) {
+                    backoff(attempt++);
+                    continue;
+                }
+                attempt = 0;
+                stage.occupancySum.add(stage.input.size());
+                Object result;
+                try {
+                    result = stage.function.apply(item.payload());
+                } catch (Throwable t) {
+                    // the frame is lost and the sink would wait for it forever,
+                    // so fail the whole pipeline instead of only this worker
+                    fail(t);
+                    return;
+                }
+                stage.processed.increment();
+                put(stage.output, new Sequenced(item.sequence(), result), stage);
+            }
+        }
+
+        // single thread, hands the frames to the sink in the order they were submitted
+        private void runSink() {
+            BoundedLink<Sequenced> last = this.links.get(this.links.size() - 1);
+            int mask = this.window - 1;
+            long next = 0;
+            int attempt = 0;
+            while (this.running) {
+                Sequenced item = last.poll();
+                if (item == null) {
+                    backoff(attempt++);
+                    continue;
+                }
+                attempt = 0;
+                this.reorderBuffer[(int) (item.sequence() & mask)] = item;
+                Sequenced ready;
+                while ((ready = this.reorderBuffer[(int) (next & mask)]) != null) {
+                    this.reorderBuffer[(int) (next & mask)] = null;
+                    try {
+                        this.sink.accept(ready.payload());
+                    } catch (Throwable t) {
+                        fail(t);
+                        return;
+                    }
+                    next++;
+                    this.emitted.lazySet(next);
+                }
+            }
+        }
+    }
+
+    // a frame with some pixels so the stages have something to chew on
+    record SyntheticFrame(long id, long[] pixels) {
+    }
+
+    // cpu heavy work: a few rounds of xorshift over all the pixels
+    private static SyntheticFrame work(SyntheticFrame frame, int rounds) {
+        long[] pixels = frame.pixels().clone();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < pixels.length; i++) {
+                long x = pixels[i] + round;
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                pixels[i] = x;
+            }
+        }
+        return new SyntheticFrame(frame.id(), pixels);
+    }
+
+    private static void benchmark(int frames, int decodeThreads, int transformThreads, int encodeThreads)
+            throws InterruptedException {
+        long[] expected = {0};
+        long[] outOfOrder = {0};
+        // transform costs 4 units, encode 2, decode 1
+        Pipeline<SyntheticFrame> pipeline = _13_FramePipeline.<SyntheticFrame>builder(64)
+                .stage("decode", decodeThreads, f -> work(f, 10))
+                .stage("transform", transformThreads, f -> work(f, 40))
+                .stage("encode", encodeThreads, f -> work(f, 20))
+                .build(f -> {
+                    if (f.id() != expected[0]) {
+                        outOfOrder[0]++;
+                    }
+                    expected[0] = f.id() + 1;
+                });
+
+        long[] pixels = new long[1024];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            pipeline.submit(new SyntheticFrame(i, pixels));
+        }
+        pipeline.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // close() joined the sink thread, so its counters are visible here
+        System.out.printf("decode x%d, transform x%d, encode x%d: %,.0f frames/s end to end, out of order=%d%n",
+                decodeThreads, transformThreads, encodeThreads, frames / seconds, outOfOrder[0]);
+        for (StageStats stats : pipeline.stats()) {
+            System.out.println("  " + stats);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int frames = 20_000;
+        // warm-up, so the JIT compiles the stages before we measure
+        benchmark(frames, 1, 1, 1);
+        System.out.println("---");
+        // transform is the slowest stage, giving it more threads should raise the throughput
+        // until the machine runs out of cores or another stage becomes the slowest
+        benchmark(frames, 1, 1, 1);
+        benchmark(frames, 1, 2, 1);
+        benchmark(frames, 1, 4, 2);
+        benchmark(frames, 2, 8, 4);
+    }
+}
@@ -0,0 +1,467 @@
+package concepts.multithreading;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class _8_WorkStealing {
+    /*
+    A classic thread pool (ThreadPoolExecutor) has one shared queue.
+    Every submit and every take goes through the same lock / the same head and tail,
+    so with a million tiny tasks (like the ones in _3_VirtualThreads or the
+    per-iteration work in _5_RaceConditions) the threads spend more time fighting
+    over the queue than running the tasks.
+
+    A work-stealing scheduler gives every worker its own double ended queue (deque).
+    - the owner pushes and pops at the bottom of its own deque (LIFO), no contention,
+      and the most recently pushed task is usually still hot in the cache
+    - an idle worker steals from the top of somebody else's deque (FIFO), so the thief
+      takes the oldest task and only competes with the owner when the deque is almost empty
+
+    The deque used here is the Chase-Lev deque:
+    "Dynamic Circular Work-Stealing Deque", Chase and Lev, SPAA 2005.
+    Only the owner thread may call push() and pop(), any thread may call steal().
+    ForkJoinPool uses the same idea internally.
+    * */
+
+    public static class ChaseLevDeque<T> {
+        private static final VarHandle TOP;
+        private static final VarHandle BOTTOM;
+        private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                TOP = lookup.findVarHandle(ChaseLevDeque.class, "top", long.class);
+                BOTTOM = lookup.findVarHandle(ChaseLevDeque.class, "bottom", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // thieves take from top, the owner pushes and pops at bottom
+        // both only ever grow, the slot is index & (length - 1)
+        private volatile long top = 0;
+        private volatile long bottom = 0;
+        private volatile Object[] array;
+
+        public ChaseLevDeque(int initialCapacity) {
+            if (Integer.bitCount(initialCapacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two: " + initialCapacity);
+            }
+            this.array = new Object[initialCapacity];
+        }
+
+        // owner only
+        public void push(T task) {
+            long b = (long) BOTTOM.getOpaque(this);
+            long t = (long) TOP.getAcquire(this);
+            Object[] a = this.array;
+            if (b - t > a.length - 1) {
+                a = grow(a, t, b);
+            }
+            SLOT.setRelease(a, (int) (b & (a.length - 1)), task);
+            // the release store on bottom publishes the slot to the thieves
+            BOTTOM.setRelease(this, b + 1);
+        }
+
+        // owner only, LIFO
+        @SuppressWarnings("unchecked")
+        public T pop() {
+            long b = (long) BOTTOM.getOpaque(this) - 1;
+            Object[] a = this.array;
+            // the volatile store on bottom followed by the volatile load of top
+            // is the store->load ordering the algorithm depends on:
+            // either we see the thief's new top, or the thief sees our new bottom
+            this.bottom = b;
+            long t = this.top;
+            if (t > b) {
+                // deque was already empty
+                BOTTOM.setOpaque(this, b + 1);
+                return null;
+            }
+            int index = (int) (b & (a.length - 1));
+            T task = (T) SLOT.getAcquire(a, index);
+            if (t == b) {
+                // last element, race with the thieves for it
+                if (!TOP.compareAndSet(this, t, t + 1)) {
+                    task = null;
+                }
+                BOTTOM.setOpaque(this, b + 1);
+                return task;
+            }
+            // clear the slot so the task can be garbage collected
+            SLOT.setOpaque(a, index, null);
+            return task;
+        }
+
+        // any thread, FIFO
+        @SuppressWarnings("unchecked")
+        public T steal() {
+            long t = this.top;
+            long b = this.bottom;
+            if (t >= b) {
+                return null;
+            }
+            Object[] a = this.array;
+            T task = (T) SLOT.getAcquire(a, (int) (t & (a.length - 1)));
+            // if the CAS fails, another thief or the owner took this element
+            if (!TOP.compareAndSet(this, t, t + 1)) {
+                return null;
+            }
+            return task;
+        }
+
+        // approximate when read by a thread other than the owner
+        public int size() {
+            long size = this.bottom - this.top;
+            return (int) Math.max(0, size);
+        }
+
+        private Object[] grow(Object[] old, long t, long b) {
+            Object[] bigger = new Object[old.length << 1];
+            for (long i = t; i < b; i++) {
+                bigger[(int) (i & (bigger.length - 1))] = SLOT.getAcquire(old, (int) (i & (old.length - 1)));
+            }
+            // thieves that still hold the old array read the same elements
+            // because nothing is overwritten in the old array after this point
+            this.array = bigger;
+            return bigger;
+        }
+    }
+
+    public static class WorkStealingExecutor {
+        private static final ThreadLocal<Worker> CURRENT = new ThreadLocal<>();
+        private static final int SPINS_BEFORE_PARK = 64;
+        // a worker that pushes into its own deque does not wake anybody,
+        // so idle workers wake up on their own to look for something to steal
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        private final Worker[] workers;
+        private final AtomicLong nextWorker = new AtomicLong();
+        private volatile boolean running = true;
+
+        public WorkStealingExecutor(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be at least 1");
+            }
+            this.workers = new Worker[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                this.workers[i] = new Worker(i);
+            }
+            for (Worker worker : this.workers) {
+                worker.thread.start();
+            }
+        }
+
+        // a task submitted from one of our own workers goes straight into its deque,
+        // anything else goes into the inbox of one worker, picked round robin
+        public void submit(Runnable task) {
+            Worker current = CURRENT.get();
+            if (current != null && current.executor() == this) {
+                current.deque.push(task);
+                return;
+            }
+            Worker target = this.workers[(int) (this.nextWorker.getAndIncrement() % this.workers.length)];
+            target.inbox.add(List.of(task));
+            target.wakeUp();
+        }
+
+        // the whole batch is cut into one contiguous chunk per worker
+        // so a bulk submission costs one inbox insert per worker instead of one per task,
+        // and there is no shared queue that all the submitted tasks go through
+        public void submitAll(List<? extends Runnable> tasks) {
+            int n = tasks.size();
+            int parts = Math.min(this.workers.length, n);
+            // continue the round robin of submit(), so small batches do not always land on the first workers
+            long first = this.nextWorker.getAndAdd(parts);
+            int start = 0;
+            for (int i = 0; i < parts; i++) {
+                int end = start + (n - start) / (parts - i);
+                Worker target = this.workers[(int) ((first + i) % this.workers.length)];
+                // copy the chunk: the worker reads it later, the caller may reuse its list as soon as
+                // we return. List.copyOf also rejects null tasks, which pop() would take for an empty deque
+                target.inbox.add(List.copyOf(tasks.subList(start, end)));
+                target.wakeUp();
+                start = end;
+            }
+        }
+
+        public int parallelism() {
+            return this.workers.length;
+        }
+
+        public long stealCount(int worker) {
+            return this.workers[worker].steals.get();
+        }
+
+        public long executedCount(int worker) {
+            return this.workers[worker].executed.get();
+        }
+
+        public int queueDepth(int worker) {
+            return this.workers[worker].deque.size();
+        }
+
+        public String metrics() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < this.workers.length; i++) {
+                sb.append("worker-").append(i)
+                        .append(" executed=").append(executedCount(i))
+                        .append(" steals=").append(stealCount(i))
+                        .append(" depth=").append(queueDepth(i))
+                        .append('\n');
+            }
+            return sb.toString();
+        }
+
+        public void shutdown() throws InterruptedException {
+            this.running = false;
+            for (Worker worker : this.workers) {
+                LockSupport.unpark(worker.thread);
+            }
+            for (Worker worker : this.workers) {
+                worker.thread.join();
+            }
+        }
+
+        private class Worker implements Runnable {
+            private final int index;
+            private final Thread thread;
+            private final ChaseLevDeque<Runnable> deque = new ChaseLevDeque<>(1024);
+            // only the owner can push into its deque, so other threads hand work over through the inbox
+            private final ConcurrentLinkedQueue<List<? extends Runnable>> inbox = new ConcurrentLinkedQueue<>();
+            // written by the owner only, lazySet is enough for the metrics readers
+            private final AtomicLong steals = new AtomicLong();
+            private final AtomicLong executed = new AtomicLong();
+            private volatile boolean parked = false;
+
+            Worker(int index) {
+                this.index = index;
+                this.thread = new Thread(this, "work-stealing-" + index);
+                this.thread.setDaemon(true);
+            }
+
+            WorkStealingExecutor executor() {
+                return WorkStealingExecutor.this;
+            }
+
+            void wakeUp() {
+                // the submitter writes the inbox and then reads parked,
+                // the worker writes parked and then reads the inbox,
+                // so at least one of them sees the other
+                if (this.parked) {
+                    LockSupport.unpark(this.thread);
+                }
+            }
+
+            @Override
+            public void run() {
+                CURRENT.set(this);
+                int idleSpins = 0;
+                while (running) {
+                    Runnable task;
+                    try {
+                        task = findTask();
+                    } catch (Throwable t) {
+                        // whatever goes wrong while draining the inbox or stealing,
+                        // the worker must keep running, the other tasks still need it
+                        t.printStackTrace();
+                        task = null;
+                    }
+                    if (task != null) {
+                        idleSpins = 0;
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                        this.executed.lazySet(this.executed.get() + 1);
+                    } else if (idleSpins++ < SPINS_BEFORE_PARK) {
+                        Thread.onSpinWait();
+                    } else {
+                        this.parked = true;
+                        if (this.inbox.isEmpty() && running) {
+                            LockSupport.parkNanos(this, PARK_NANOS);
+                        }
+                        this.parked = false;
+                        idleSpins = 0;
+                    }
+                }
+                CURRENT.remove();
+            }
+
+            private Runnable findTask() {
+                Runnable task = this.deque.pop();
+                if (task != null) {
+                    return task;
+                }
+                if (drainInbox()) {
+                    return this.deque.pop();
+                }
+                return steal();
+            }
+
+            private boolean drainInbox() {
+                boolean drained = false;
+                List<? extends Runnable> chunk;
+                while ((chunk = this.inbox.poll()) != null) {
+                    for (Runnable task : chunk) {
+                        this.deque.push(task);
+                    }
+                    drained = true;
+                }
+                return drained;
+            }
+
+            private Runnable steal() {
+                // start at a random victim so the thieves do not all hit the same deque
+                int n = workers.length;
+                int start = ThreadLocalRandom.current().nextInt(n);
+                for (int i = 0; i < n; i++) {
+                    Worker victim = workers[(start + i) % n];
+                    if (victim == this) {
+                        continue;
+                    }
+                    Runnable task = victim.deque.steal();
+                    if (task != null) {
+                        this.steals.lazySet(this.steals.get() + 1);
+                        return task;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    // busy spins instead of sleeping, sleep() is far too coarse for microsecond tasks
+    private static void spinFor(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static List<Runnable> tasks(int count, long taskNanos, LongAdder done) {
+        List<Runnable> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(() -> {
+                spinFor(taskNanos);
+                done.increment();
+            });
+        }
+        return tasks;
+    }
+
+    private static void awaitCompletion(LongAdder done, int count) {
+        while (done.sum() < count) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    // batched: the whole list in one submitAll()
+    private static double runWorkStealingBatch(WorkStealingExecutor executor, int count, long taskNanos) {
+        LongAdder done = new LongAdder();
+        List<Runnable> tasks = tasks(count, taskNanos, done);
+        long start = System.nanoTime();
+        executor.submitAll(tasks);
+        awaitCompletion(done, count);
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // one submit() per task from the main thread, the same as execute() on the other pools
+    private static double runWorkStealingSingle(WorkStealingExecutor executor, int count, long taskNanos) {
+        LongAdder done = new LongAdder();
+        List<Runnable> tasks = tasks(count, taskNanos, done);
+        long start = System.nanoTime();
+        for (Runnable task : tasks) {
+            executor.submit(task);
+        }
+        awaitCompletion(done, count);
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // batched for ForkJoinPool: one seeding task forks all the others from inside the pool,
+    // so they go into a worker's own deque instead of through the external submission queue
+    private static double runForkJoinBatch(ForkJoinPool pool, int count, long taskNanos) {
+        LongAdder done = new LongAdder();
+        List<Runnable> tasks = tasks(count, taskNanos, done);
+        long start = System.nanoTime();
+        pool.execute(() -> {
+            for (Runnable task : tasks) {
+                ForkJoinTask.adapt(task).fork();
+            }
+        });
+        awaitCompletion(done, count);
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double runExecutorService(ExecutorService executor, int count, long taskNanos) {
+        LongAdder done = new LongAdder();
+        List<Runnable> tasks = tasks(count, taskNanos, done);
+        long start = System.nanoTime();
+        for (Runnable task : tasks) {
+            executor.execute(task);
+        }
+        awaitCompletion(done, count);
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        WorkStealingExecutor workStealing = new WorkStealingExecutor(parallelism);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+        // 0.5 s of task time for every task size
+        long[] taskMicros = {1, 10, 100};
+        int[] taskCounts = {500_000, 50_000, 5_000};
+        int rounds = 3;
+
+        // compare like with like: per task submission from the main thread on all three pools,
+        // and batched submission where the pool has a way to do it (ThreadPoolExecutor has none)
+        System.out.println("parallelism = " + parallelism);
+        for (int i = 0; i < taskMicros.length; i++) {
+            long taskNanos = TimeUnit.MICROSECONDS.toNanos(taskMicros[i]);
+            int count = taskCounts[i];
+            double wsSingle = 0, fjSingle = 0, tpSingle = 0, wsBatch = 0, fjBatch = 0;
+            // the first round is warm-up and is not counted
+            for (int round = 0; round <= rounds; round++) {
+                double r1 = runWorkStealingSingle(workStealing, count, taskNanos);
+                double r2 = runExecutorService(forkJoinPool, count, taskNanos);
+                double r3 = runExecutorService(threadPool, count, taskNanos);
+                double r4 = runWorkStealingBatch(workStealing, count, taskNanos);
+                double r5 = runForkJoinBatch(forkJoinPool, count, taskNanos);
+                if (round > 0) {
+                    wsSingle += r1;
+                    fjSingle += r2;
+                    tpSingle += r3;
+                    wsBatch += r4;
+                    fjBatch += r5;
+                }
+            }
+            System.out.printf("%4dus tasks, per task: work-stealing %,12.0f | ForkJoinPool %,12.0f | ThreadPoolExecutor %,12.0f tasks/s%n",
+                    taskMicros[i], wsSingle / rounds, fjSingle / rounds, tpSingle / rounds);
+            System.out.printf("%4dus tasks, batched:  work-stealing %,12.0f | ForkJoinPool %,12.0f tasks/s%n",
+                    taskMicros[i], wsBatch / rounds, fjBatch / rounds);
+        }
+        System.out.print(workStealing.metrics());
+
+        workStealing.shutdown();
+        forkJoinPool.shutdown();
+        threadPool.shutdown();
+    }
+}
@@ -0,0 +1,436 @@
+package concepts.multithreading;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+public class _9_CpuAffinity {
+    /*
+    The operating system is free to move a thread to any cpu at any time.
+    For most programs that is fine, but for two threads that talk to each other
+    all the time, like the producer and consumer of _6_HappensBefore.FrameExchanger,
+    it matters a lot where they run:
+    - two hyper-threads of the same core share L1 and L2, a cache line moves between them very fast
+    - two cores of the same socket share the L3, a cache line moves through the L3
+    - two cores on different sockets have no cache in common, the cache line has to cross
+      the interconnect between the sockets, which is many times slower
+
+    Java has no api to pin a thread to a cpu, but since java 22 we can call
+    the Linux function sched_setaffinity directly with the Foreign Function & Memory api (FFM),
+    no JNI and no C code needed.
+    The machine layout (which cpu belongs to which core, socket and cache) is exposed by Linux
+    as plain text files under /sys/devices/system/cpu.
+
+    Run with --enable-native-access=ALL-UNNAMED to avoid the restricted method warning.
+    * */
+
+    private static final Path CPU_ROOT = Path.of("/sys/devices/system/cpu");
+
+    // l2 and l3 are identified by the lowest cpu that shares the cache, -1 if the cache is unknown
+    public record Cpu(int id, int socket, int core, int l2, int l3) {
+        public boolean sameCore(Cpu other) {
+            return this.socket == other.socket && this.core == other.core;
+        }
+
+        public boolean sameSocket(Cpu other) {
+            return this.socket == other.socket;
+        }
+    }
+
+    public static class CpuTopology {
+        private final List<Cpu> cpus;
+
+        private CpuTopology(List<Cpu> cpus) {
+            this.cpus = List.copyOf(cpus);
+        }
+
+        public static CpuTopology read() throws IOException {
+            List<Cpu> cpus = new ArrayList<>();
+            // only the cpus that are online and that this process is allowed to run on,
+            // under taskset or a cgroup cpuset sched_setaffinity fails for the others
+            TreeSet<Integer> usable = parseCpuList(readString(CPU_ROOT.resolve("online")));
+            TreeSet<Integer> allowed = allowedCpus();
+            if (!allowed.isEmpty()) {
+                usable.retainAll(allowed);
+            }
+            for (int id : usable) {
+                Path cpu = CPU_ROOT.resolve("cpu" + id);
+                int socket = readInt(cpu.resolve("topology/physical_package_id"), 0);
+                int core = readInt(cpu.resolve("topology/core_id"), id);
+                cpus.add(new Cpu(id, socket, core, sharedCacheOwner(cpu, 2), sharedCacheOwner(cpu, 3)));
+            }
+            return new CpuTopology(cpus);
+        }
+
+        public List<Cpu> cpus() {
+            return this.cpus;
+        }
+
+        // two hyper-threads of the same physical core
+        public Optional<int[]> sameCorePair() {
+            return findPair((a, b) -> a.sameCore(b));
+        }
+
+        // two different physical cores of the same socket, preferring cores that share the L2,
+        // then cores that share the L3
+        public Optional<int[]> sameSocketPair() {
+            Optional<int[]> sharedL2 = findPair((a, b) -> !a.sameCore(b) && a.l2() >= 0 && a.l2() == b.l2());
+            if (sharedL2.isPresent()) {
+                return sharedL2;
+            }
+            Optional<int[]> sharedL3 = findPair((a, b) -> !a.sameCore(b) && a.l3() >= 0 && a.l3() == b.l3());
+            if (sharedL3.isPresent()) {
+                return sharedL3;
+            }
+            return findPair((a, b) -> !a.sameCore(b) && a.sameSocket(b));
+        }
+
+        public Optional<int[]> crossSocketPair() {
+            return findPair((a, b) -> !a.sameSocket(b));
+        }
+
+        // the automatic placement for a producer / consumer pair:
+        // sibling cores of the same socket, so they share a cache but do not
+        // steal execution resources from each other like two hyper-threads do
+        public Optional<int[]> producerConsumerPair() {
+            return sameSocketPair().or(this::sameCorePair);
+        }
+
+        private interface PairFilter {
+            boolean matches(Cpu a, Cpu b);
+        }
+
+        private Optional<int[]> findPair(PairFilter filter) {
+            for (int i = 0; i < this.cpus.size(); i++) {
+                for (int j = i + 1; j < this.cpus.size(); j++) {
+                    Cpu a = this.cpus.get(i);
+                    Cpu b = this.cpus.get(j);
+                    if (filter.matches(a, b)) {
+                        return Optional.of(new int[]{a.id(), b.id()});
+                    }
+                }
+            }
+            return Optional.empty();
+        }
+
+        // the "Cpus_allowed_list:\t0-3,8-11" line of /proc/self/status, empty if it can not be read
+        private static TreeSet<Integer> allowedCpus() throws IOException {
+            Path status = Path.of("/proc/self/status");
+            if (!Files.exists(status)) {
+                return new TreeSet<>();
+            }
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    return parseCpuList(line.substring("Cpus_allowed_list:".length()).trim());
+                }
+            }
+            return new TreeSet<>();
+        }
+
+        private static int sharedCacheOwner(Path cpu, int level) throws IOException {
+            Path cacheDir = cpu.resolve("cache");
+            if (!Files.isDirectory(cacheDir)) {
+                return -1;
+            }
+            try (var indexes = Files.list(cacheDir)) {
+                for (Path index : indexes.filter(p -> p.getFileName().toString().startsWith("index")).toList()) {
+                    String type = readString(index.resolve("type"));
+                    if (readInt(index.resolve("level"), -1) == level && !type.equals("Instruction")) {
+                        TreeSet<Integer> shared = parseCpuList(readString(index.resolve("shared_cpu_list")));
+                        return shared.isEmpty() ? -1 : shared.first();
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static String readString(Path path) throws IOException {
+            return Files.exists(path) ? Files.readString(path).trim() : "";
+        }
+
+        private static int readInt(Path path, int defaultValue) throws IOException {
+            String value = readString(path);
+            return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+        }
+
+        // the kernel writes cpu lists like "0-3,8-11"
+        static TreeSet<Integer> parseCpuList(String list) {
+            TreeSet<Integer> cpus = new TreeSet<>();
+            if (list.isEmpty()) {
+                return cpus;
+            }
+            for (String part : list.split(",")) {
+                int dash = part.indexOf('-');
+                if (dash < 0) {
+                    cpus.add(Integer.parseInt(part));
+                } else {
+                    int from = Integer.parseInt(part.substring(0, dash));
+                    int to = Integer.parseInt(part.substring(dash + 1));
+                    for (int i = from; i <= to; i++) {
+                        cpus.add(i);
+                    }
+                }
+            }
+            return cpus;
+        }
+    }
+
+    public static class Affinity {
+        // cpu_set_t from glibc is 1024 bits
+        private static final int CPU_SET_BITS = 1024;
+        private static final StructLayout ERRNO_LAYOUT = Linker.Option.captureStateLayout();
+        private static final VarHandle ERRNO = ERRNO_LAYOUT.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+        private static final MethodHandle SCHED_SETAFFINITY;
+
+        static {
+            Linker linker = Linker.nativeLinker();
+            // int sched_setaffinity(pid_t pid, size_t cpusetsize, const cpu_set_t *mask);
+            SCHED_SETAFFINITY = linker.downcallHandle(
+                    linker.defaultLookup().find("sched_setaffinity").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS),
+                    Linker.Option.captureCallState("errno"));
+        }
+
+        // pins the calling thread, pid 0 means "the calling thread" for sched_setaffinity
+        public static void pinCurrentThread(int cpu) {
+            if (cpu < 0 || cpu >= CPU_SET_BITS) {
+                throw new IllegalArgumentException("Cpu out of range: " + cpu);
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment mask = arena.allocate(CPU_SET_BITS / 8, 8);
+                mask.setAtIndex(ValueLayout.JAVA_LONG, cpu / 64, 1L << (cpu % 64));
+                MemorySegment errno = arena.allocate(ERRNO_LAYOUT);
+                int result = (int) SCHED_SETAFFINITY.invokeExact(errno, 0, mask.byteSize(), mask);
+                if (result != 0) {
+                    throw new IllegalStateException("sched_setaffinity(" + cpu + ") failed, errno=" + (int) ERRNO.get(errno, 0L));
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    // hands out the given cpus round robin, each thread pins itself as the first thing it does
+    // because sched_setaffinity with pid 0 only works on the calling thread.
+    // what happens when pinning fails is decided up front by the OnPinFailure policy,
+    // the failure is also kept in failure() so the code waiting for the thread can check it
+    public static class PinnedThreadFactory implements ThreadFactory {
+        public enum OnPinFailure {
+            // the runnable is not run, the exception goes to the uncaught exception handler
+            PROPAGATE,
+            // the runnable is run anyway, wherever the operating system puts the thread
+            RUN_UNPINNED
+        }
+
+        private final int[] cpus;
+        private final OnPinFailure onPinFailure;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        public PinnedThreadFactory(OnPinFailure onPinFailure, int... cpus) {
+            if (cpus.length == 0) {
+                throw new IllegalArgumentException("At least one cpu is needed");
+            }
+            this.cpus = cpus.clone();
+            this.onPinFailure = onPinFailure;
+        }
+
+        // the first thread created is meant for the producer, the second for the consumer.
+        // with PROPAGATE a machine without a suitable pair is an error right away,
+        // with RUN_UNPINNED it gets a factory whose threads are not pinned at all
+        public static PinnedThreadFactory forProducerConsumer(CpuTopology topology, OnPinFailure onPinFailure) {
+            Optional<int[]> pair = topology.producerConsumerPair();
+            if (pair.isPresent()) {
+                return new PinnedThreadFactory(onPinFailure, pair.get());
+            }
+            if (onPinFailure == OnPinFailure.PROPAGATE) {
+                throw new IllegalStateException("No pair of cpus for a producer and a consumer in " + topology.cpus());
+            }
+            return new PinnedThreadFactory(onPinFailure);
+        }
+
+        private PinnedThreadFactory(OnPinFailure onPinFailure) {
+            this.cpus = new int[0];
+            this.onPinFailure = onPinFailure;
+        }
+
+        public OnPinFailure onPinFailure() {
+            return this.onPinFailure;
+        }
+
+        public int[] cpus() {
+            return this.cpus.clone();
+        }
+
+        // the first pinning failure of any thread of this factory, if there was one
+        public Optional<Throwable> failure() {
+            return Optional.ofNullable(this.failure.get());
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            if (this.cpus.length == 0) {
+                return Thread.ofPlatform().name("unpinned").unstarted(runnable);
+            }
+            int cpu = this.cpus[Math.floorMod(this.next.getAndIncrement(), this.cpus.length)];
+            return Thread.ofPlatform().name("pinned-cpu-" + cpu).unstarted(() -> {
+                try {
+                    Affinity.pinCurrentThread(cpu);
+                } catch (RuntimeException e) {
+                    this.failure.compareAndSet(null, e);
+                    if (this.onPinFailure == OnPinFailure.PROPAGATE) {
+                        throw e;
+                    }
+                }
+                runnable.run();
+            });
+        }
+    }
+
+    // ping-pong over two FrameExchangers: the producer stores into ping and waits on pong,
+    // the consumer waits on ping and answers on pong, so every round trip moves
+    // the exchanger cache lines between the two cpus twice
+    private static final long PING_PONG_TIMEOUT_MILLIS = 60_000;
+
+    private static double pingPongNanos(PinnedThreadFactory factory, int roundTrips) throws InterruptedException {
+        _6_HappensBefore happensBefore = new _6_HappensBefore();
+        _6_HappensBefore.FrameExchanger ping = happensBefore.new FrameExchanger();
+        _6_HappensBefore.FrameExchanger pong = happensBefore.new FrameExchanger();
+        _6_HappensBefore.Frame frame = happensBefore.new Frame();
+        long[] elapsed = new long[1];
+        AtomicBoolean stopped = new AtomicBoolean();
+
+        // both threads meet at the barrier before any frame is exchanged. a thread that could
+        // not be pinned never gets there, its uncaught exception breaks the barrier for the other one
+        CyclicBarrier ready = new CyclicBarrier(2);
+        Thread producer = factory.newThread(() -> {
+            if (awaitQuietly(ready)) {
+                long start = System.nanoTime();
+                for (int i = 0; i < roundTrips && !stopped.get(); i++) {
+                    ping.storeFrame(frame);
+                    pong.takeFrame();
+                }
+                elapsed[0] = System.nanoTime() - start;
+            }
+        });
+        Thread consumer = factory.newThread(() -> {
+            if (awaitQuietly(ready)) {
+                for (int i = 0; i < roundTrips && !stopped.get(); i++) {
+                    pong.storeFrame(ping.takeFrame());
+                }
+            }
+        });
+        for (Thread thread : List.of(producer, consumer)) {
+            thread.setUncaughtExceptionHandler((t, e) -> ready.reset());
+            // a thread stuck in takeFrame() must not keep the jvm alive
+            thread.setDaemon(true);
+        }
+        consumer.start();
+        producer.start();
+
+        // one deadline for both threads, not a full timeout each
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PING_PONG_TIMEOUT_MILLIS);
+        for (Thread thread : List.of(producer, consumer)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                thread.join(Duration.ofNanos(remaining));
+            }
+        }
+        boolean timedOut = producer.isAlive() || consumer.isAlive();
+        if (timedOut) {
+            // stop the loops and keep feeding both exchangers until the threads are out of takeFrame(),
+            // otherwise they keep spinning on their cpus and disturb the placements measured after this one
+            stopped.set(true);
+            while (producer.isAlive() || consumer.isAlive()) {
+                ping.storeFrame(frame);
+                pong.storeFrame(frame);
+                producer.join(1);
+                consumer.join(1);
+            }
+        }
+        // with RUN_UNPINNED a pinning failure is not an error, the run just was not pinned
+        if (factory.failure().isPresent() && factory.onPinFailure() == PinnedThreadFactory.OnPinFailure.PROPAGATE) {
+            throw new IllegalStateException("could not pin to cpus " + Arrays.toString(factory.cpus()),
+                    factory.failure().get());
+        }
+        if (timedOut) {
+            throw new IllegalStateException("ping-pong did not finish within " + PING_PONG_TIMEOUT_MILLIS + " ms");
+        }
+        // one way latency is half of the round trip
+        return elapsed[0] / (roundTrips * 2.0);
+    }
+
+    private static boolean awaitQuietly(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+            return true;
+        } catch (InterruptedException | BrokenBarrierException e) {
+            return false;
+        }
+    }
+
+    private static void benchmark(String placement, Optional<int[]> pair) throws InterruptedException {
+        if (pair.isEmpty()) {
+            System.out.println(placement + ": skipped, this machine has no such pair of cpus");
+            return;
+        }
+        benchmark(placement, () -> new PinnedThreadFactory(PinnedThreadFactory.OnPinFailure.PROPAGATE, pair.get()));
+    }
+
+    // every run gets a fresh factory, so the pinning failure of one run is not reported again by the next
+    private static void benchmark(String placement, Supplier<PinnedThreadFactory> factories) throws InterruptedException {
+        int[] cpus;
+        double latency;
+        try {
+            // warm-up so the exchanger code is compiled before we measure
+            pingPongNanos(factories.get(), 100_000);
+            PinnedThreadFactory factory = factories.get();
+            cpus = factory.cpus();
+            latency = pingPongNanos(factory, 1_000_000);
+        } catch (IllegalStateException e) {
+            System.out.println(placement + ": failed, " + e.getMessage()
+                    + (e.getCause() != null ? " (" + e.getCause().getMessage() + ")" : ""));
+            return;
+        }
+        System.out.printf("%s (cpus %s): %.1f ns one way%n", placement, Arrays.toString(cpus), latency);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CpuTopology topology = CpuTopology.read();
+        for (Cpu cpu : topology.cpus()) {
+            System.out.println(cpu);
+        }
+
+        // the placement a producer / consumer pair would get automatically
+        benchmark("producer/consumer placement",
+                () -> PinnedThreadFactory.forProducerConsumer(topology, PinnedThreadFactory.OnPinFailure.PROPAGATE));
+        benchmark("same core", topology.sameCorePair());
+        benchmark("same socket", topology.sameSocketPair());
+        benchmark("cross socket", topology.crossSocketPair());
+    }
+}